@@ -0,0 +1,4 @@
+package org.tdom.bench.jmh_generated;
+public class BuildBench_jmhType extends BuildBench_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.tdom.bench.jmh_generated;
+public class ListBench_jmhType extends ListBench_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.tdom.bench.jmh_generated;
+public class ParseBench_jmhType extends ParseBench_jmhType_B3 {
+}
+
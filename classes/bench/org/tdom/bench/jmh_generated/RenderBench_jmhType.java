@@ -0,0 +1,4 @@
+package org.tdom.bench.jmh_generated;
+public class RenderBench_jmhType extends RenderBench_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.tdom.bench.jmh_generated;
+public class SelectBench_jmhType extends SelectBench_jmhType_B3 {
+}
+
@@ -0,0 +1,69 @@
+package org.tdom.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.tdom.TDom;
+import static org.tdom.TDom.*;
+
+// Cost of building trees through n(), a() and t(). The page
+// benchmarks build and render a page the way a request would, with
+// and without an Arena; run them with -prof gc to compare the
+// allocation rates. deep builds one long chain from the top down, so
+// each append lands at the bottom of a deeper tree.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBench
+{
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Benchmark
+    public TTagNode build()
+    { return Docs.build(size); }
+
+    @Benchmark
+    public TTagNode deep()
+    {
+        TTagNode root = n("body");
+        TTagNode cur = root;
+        for (int i=0; i<size; i++) {
+            TTagNode next = n("div");
+            cur.append(next);
+            cur = next;
+        }
+        return root;
+    }
+
+    @Benchmark
+    public void page()
+        throws IOException
+    { Docs.build(size).render(m_out); }
+
+    @Benchmark
+    public void pageArena()
+        throws IOException
+    {
+        Docs.build(size, m_arena).render(m_out);
+        m_arena.reset();
+    }
+
+    private final Arena m_arena = new Arena();
+    private final Docs.NullWriter m_out = new Docs.NullWriter();
+}
@@ -0,0 +1,74 @@
+package org.tdom.bench;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.tdom.TDom;
+import static org.tdom.TDom.*;
+
+// Generates the synthetic documents used by the benchmarks. Each
+// section is a fixed block of 20 nodes with a mix of ids, classes,
+// attributes and text, so the selectors in SelectBench find a
+// predictable number of hits at every size.
+
+final class Docs
+{
+    final static int NODES_PER_SECTION = 20;
+
+    static TTagNode build(int nodes)
+    { return build(nodes, null); }
+
+    // Builds with nodes from arena, if it isn't null.
+    static TTagNode build(int nodes, Arena arena)
+    {
+        TTagNode body = n(arena, "body");
+        int sections = Math.max(1, nodes/NODES_PER_SECTION);
+        for (int i=0; i<sections; i++) {
+            body.append(section(i, arena));
+        }
+        return n(arena, "html",
+                 n(arena, "head", n(arena, "title", t("Benchmark page"))),
+                 body);
+    }
+
+    static TTagNode section(int i)
+    { return section(i, null); }
+
+    static TTagNode section(int i, Arena arena)
+    {
+        TTagNode ul = n(arena, "ul", a("class", "items"));
+        for (int j=0; j<4; j++) {
+            ul.append
+                (n(arena, "li", a("class", "item i"+j),
+                   n(arena, "span", a("data", "v"+j+" w"), t("item "+j)),
+                   n(arena, "a", a("href", "/item/"+i+"/"+j), t("more"))));
+        }
+        return n(arena, "div",
+                 a("id", "s"+i),
+                 a("class", "section s"+(i%10)),
+                 n(arena, "h2", t("Section \u00e9 "+i)),
+                 n(arena, "p", t("Some <escaped> & \"quoted\" text for "+i),
+                   n(arena, "a", a("href", "/s/"+i), t("link"))),
+                 ul);
+    }
+
+    private static TTagNode n(Arena arena, String name, TDom... extra)
+    { return (arena == null)?TDom.n(name, extra):arena.n(name, extra); }
+
+    // Swallows all output, so render benchmarks measure TDom rather
+    // than the destination.
+    final static class NullWriter extends Writer
+    {
+        public void write(char[] buf, int off, int len) {}
+        public void write(String s, int off, int len) {}
+        public void write(int c) {}
+        public void flush() {}
+        public void close() {}
+    }
+
+    final static class NullOutputStream extends OutputStream
+    {
+        public void write(byte[] buf, int off, int len) {}
+        public void write(int b) {}
+    }
+}
@@ -0,0 +1,64 @@
+package org.tdom.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.tdom.TDom;
+import static org.tdom.TDom.*;
+
+// Cost of bulk TList mutations. Each invocation gets a fresh tree, so
+// these are reported as average time per operation.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListBench
+{
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Setup(Level.Invocation)
+    public void setup()
+    {
+        m_root = Docs.build(size);
+        m_items = m_root.select("li");
+    }
+
+    @Benchmark
+    public TNode append()
+    { return m_items.append(n("em", a("class", "badge"), t("new"))); }
+
+    @Benchmark
+    public TList before()
+    { return m_items.before(n("hr")); }
+
+    @Benchmark
+    public TList after()
+    { return m_items.after(t("after")); }
+
+    @Benchmark
+    public TList remove()
+    { return m_items.remove(); }
+
+    @Benchmark
+    public TList up()
+    { return m_items.up(); }
+
+    private TTagNode m_root;
+    private TList m_items;
+}
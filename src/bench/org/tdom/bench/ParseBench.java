@@ -0,0 +1,67 @@
+package org.tdom.bench;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import org.tdom.TDom;
+import static org.tdom.TDom.*;
+
+// TDom.parse against the JDK DOM parser, over the rendered form of the
+// benchmark documents (about 300KB and 3MB of XHTML).
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBench
+{
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        StringWriter sw = new StringWriter();
+        Docs.build(size).render(sw);
+        m_text = sw.toString();
+        m_builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+    @Benchmark
+    public TList tdomString()
+    { return TDom.parse(m_text); }
+
+    @Benchmark
+    public TList tdomReader()
+        throws Exception
+    { return TDom.parse(new StringReader(m_text)); }
+
+    @Benchmark
+    public Document jdkDom()
+        throws Exception
+    { return m_builder.parse(new InputSource(new StringReader(m_text))); }
+
+    private String m_text;
+    private DocumentBuilder m_builder;
+}
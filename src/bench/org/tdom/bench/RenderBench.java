@@ -0,0 +1,146 @@
+package org.tdom.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.tdom.TDom;
+import static org.tdom.TDom.*;
+
+// Cost of dup() and of rendering an existing tree.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBench
+{
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Setup
+    public void setup()
+    {
+        m_root = Docs.build(size);
+        m_template = Docs.build(size).freeze();
+        m_cached = Docs.build(size);
+        for (TTagNode section: m_cached.select(".section").getEntries()) {
+            section.cache();
+        }
+        m_numbers = n("table");
+        for (int i=0; i<size; i += 10) {
+            TTagNode tr = n("tr");
+            for (int j=0; j<10; j++) { tr.append(n("td", t(i+j))); }
+            m_numbers.append(tr);
+        }
+        m_pw = new PrintWriter(new Docs.NullWriter());
+        m_os = new Docs.NullOutputStream();
+        m_pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown()
+    { m_pool.shutdown(); }
+
+    @Benchmark
+    public TTagNode dup()
+    { return m_root.dup(); }
+
+    // A per-request copy of a frozen layout, with one change.
+    @Benchmark
+    public TTagNode dupTemplate()
+    {
+        TTagNode page = m_template.dup();
+        page.append("#s0", n("p", t("changed")));
+        return page;
+    }
+
+    @Benchmark
+    public PrintWriter dump()
+    {
+        m_root.dump(m_pw);
+        return m_pw;
+    }
+
+    // Every section is cached, so only the outer nodes are rendered.
+    @Benchmark
+    public PrintWriter dumpCached()
+    {
+        m_cached.dump(m_pw);
+        return m_pw;
+    }
+
+    @Benchmark
+    public StringBuilder renderStringBuilder()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        m_root.render(sb);
+        return sb;
+    }
+
+    // Sized up front, so the builder never grows.
+    @Benchmark
+    public StringBuilder renderStringBuilderPresized()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder(m_root.estimateRenderedSize());
+        m_root.render(sb);
+        return sb;
+    }
+
+    @Benchmark
+    public int estimateRenderedSize()
+    { return m_root.estimateRenderedSize(); }
+
+    @Benchmark
+    public OutputStream renderUTF8()
+        throws IOException
+    {
+        m_root.render(m_os, UTF8);
+        return m_os;
+    }
+
+    @Benchmark
+    public OutputStream renderUTF8Parallel()
+        throws IOException
+    {
+        m_root.render(m_os, UTF8, m_pool);
+        return m_os;
+    }
+
+    // Integer cells, which are written without making Strings.
+    @Benchmark
+    public PrintWriter dumpNumbers()
+    {
+        m_numbers.dump(m_pw);
+        return m_pw;
+    }
+
+    private TTagNode m_root;
+    private TTagNode m_numbers;
+    private TTagNode m_template;
+    private TTagNode m_cached;
+    private PrintWriter m_pw;
+    private OutputStream m_os;
+    private ForkJoinPool m_pool;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+}
@@ -0,0 +1,70 @@
+package org.tdom.bench;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.tdom.TDom;
+import static org.tdom.TDom.*;
+
+// Cost of TTagNode.select() for each selector form, with and without
+// the tree's index.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SelectBench
+{
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Param({"li", "#s0", ".item", "span[data=~'w']", "div ul li a"})
+    public String selector;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    @Setup
+    public void setup()
+    {
+        m_root = Docs.build(size);
+        if (indexed) { m_root.index(); }
+        m_compiled = TSelector.compile(selector);
+        m_pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown()
+    { m_pool.shutdown(); }
+
+    @Benchmark
+    public TList select()
+    { return m_root.select(selector); }
+
+    @Benchmark
+    public TList selectCompiled()
+    { return m_root.select(m_compiled); }
+
+    @Benchmark
+    public TList selectParallel()
+    { return m_root.select(m_compiled, m_pool); }
+
+    private TTagNode m_root;
+    private TSelector m_compiled;
+    private ForkJoinPool m_pool;
+}
@@ -1,7 +1,24 @@
 package org.tdom;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -41,6 +58,458 @@ public class BasicTest
               "</html>");
     }
 
+    @Test public void testAttributes()
+    {
+        TTagNode p = n("p", a("ID", "x"), a("class", "c"));
+        p.append(a("id", "y"));
+        check(p, "<p id=\"y\" class=\"c\" />");
+        p.remove(a("CLASS", null));
+        check(p, "<p id=\"y\" />");
+
+        // Past a handful, attributes are also kept in a map.
+        for (int i=0; i<20; i++) {
+            p.append(a("data-"+i, i));
+        }
+        p.append(a("DATA-3", "three")).remove(a("data-4", null));
+        Map<String,TAttr> attrs = p.getAttrs();
+        assertEquals(20, attrs.size());
+        assertEquals("three", attrs.get("data-3").getValue());
+        assertEquals("DATA-3", attrs.get("data-3").getName());
+        assertFalse(attrs.containsKey("data-4"));
+        assertEquals("data-19", new ArrayList<String>(attrs.keySet()).get(19));
+        try {
+            attrs.remove("id");
+            fail("Attributes should be read-only");
+        }
+        catch (UnsupportedOperationException uoe) {
+            // ok
+        }
+
+        // Copies share attributes until one of them changes.
+        TTagNode copy = p.dup();
+        copy.append(a("data-5", "five"));
+        assertEquals("5", p.getAttrs().get("data-5").getValue());
+        assertEquals("five", copy.getAttrs().get("data-5").getValue());
+        copy.remove(a("data-6", null));
+        assertEquals(20, p.getAttrs().size());
+        assertEquals(19, copy.getAttrs().size());
+        p.append(a("data-7", "seven"));
+        assertEquals("7", copy.getAttrs().get("data-7").getValue());
+
+        // Many attributes on one node are added in linear time.
+        TTagNode big = n("p");
+        for (int i=0; i<100000; i++) {
+            big.append(a("a"+i, i));
+        }
+        for (int i=0; i<100000; i+=100) {
+            big.remove(a("a"+i, null));
+        }
+        attrs = big.getAttrs();
+        assertEquals(99000, attrs.size());
+        assertEquals("99999", attrs.get("a99999").getValue());
+        assertNull(attrs.get("a99900"));
+        assertEquals("a1", attrs.keySet().iterator().next());
+    }
+
+    @Test public void testEscaping()
+    {
+        check(n("p", a("title", "a \"b\" <c> & d"),
+                t("a \"b\" <c> & d")),
+              "<p title=\"a &quot;b&quot; &lt;c&gt; &amp; d\">"+
+              "a \"b\" &lt;c&gt; &amp; d</p>");
+
+        // Everything from 127 up is written as a numeric entity,
+        // using the full code point for surrogate pairs.
+        check(n("p", t("caf\u00e9 \u007f\u20ac \ud83d\ude00!")),
+              "<p>caf&#233; &#127;&#8364; &#128512;!</p>");
+        // An unpaired surrogate becomes a numeric character reference.
+        check(n("p", t("x\ud83dy\ude00")),
+              "<p>x&#55357;y&#56832;</p>");
+        check(n("p", t("")), "<p></p>");
+    }
+
+    @Test public void testValues()
+    {
+        check(n("p", t(0), t(-42), t(Long.MIN_VALUE), t((short) 7),
+                t(1.5), t(null)),
+              "<p>0-42-922337203685477580871.5null</p>");
+        check(n("td", a("colspan", 2), a("title", new StringBuilder("<\"x\">"))),
+              "<td colspan=\"2\" title=\"&lt;&quot;x&quot;&gt;\" />");
+
+        char[] buf = "xx<a> & \u00e9yy".toCharArray();
+        TText slice = t(buf, 2, buf.length-4);
+        assertEquals("<a> & \u00e9", slice.getText());
+        check(n("p", slice), "<p>&lt;a&gt; &amp; &#233;</p>");
+        assertEquals(Integer.valueOf(3).toString(), a("n", 3).getValue());
+
+        // Long builders are escaped in chunks, without splitting
+        // surrogate pairs.
+        StringBuilder sb = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i=0; i<3000; i++) {
+            sb.append((i%3 == 0)?"\ud83d\ude00":"&");
+            expected.append((i%3 == 0)?"&#128512;":"&amp;");
+        }
+        check(n("p", t(sb)), "<p>"+expected+"</p>");
+        assertEquals(sb.toString(), t(sb).getText());
+    }
+
+    @Test public void testRawText()
+        throws IOException
+    {
+        TText safe = raw("<b>caf\u00e9</b> &amp; more");
+        assertTrue(safe.isRaw());
+        assertFalse(t("x").isRaw());
+        check(n("p", safe, t("<")), "<p><b>caf\u00e9</b> &amp; more&lt;</p>");
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        n("p", safe).render(bout, Charset.forName("UTF-8"));
+        assertEquals("<p><b>caf\u00e9</b> &amp; more</p>",
+                     new String(bout.toByteArray(), "UTF-8"));
+
+        // Cached text is escaped once for each kind of output.
+        TText shared = t("a & b \u00e9").cache();
+        TTagNode p = n("p", shared, a("title", "t"));
+        check(p, "<p title=\"t\">a &amp; b &#233;</p>");
+        check(p, "<p title=\"t\">a &amp; b &#233;</p>");
+        bout = new ByteArrayOutputStream();
+        p.render(bout, Charset.forName("UTF-8"));
+        assertEquals("<p title=\"t\">a &amp; b \u00e9</p>",
+                     new String(bout.toByteArray(), "UTF-8"));
+        check(n("div", raw(new StringBuilder("<hr>")).cache()), "<div><hr></div>");
+
+        // Raw text goes out as it is to chars, and to bytes in any
+        // charset that can encode it.
+        TTagNode odd = n("p", raw("<i>caf\u00e9 lone\ud83d del\u007f</i>"));
+        StringBuilder sbout = new StringBuilder();
+        odd.render(sbout);
+        assertEquals("<p><i>caf\u00e9 lone\ud83d del\u007f</i></p>",
+                     sbout.toString());
+        TTagNode latin = n("p", raw("caf\u00e9\u007f"), t("\u00e9"));
+        bout = new ByteArrayOutputStream();
+        latin.render(bout, Charset.forName("ISO-8859-1"));
+        assertEquals("<p>caf\u00e9\u007f&#233;</p>",
+                     new String(bout.toByteArray(), "ISO-8859-1"));
+        // and fails where the charset cannot encode it.
+        for (String cs: new String[] { "UTF-8", "UTF-16", "US-ASCII" }) {
+            try {
+                odd.render(new ByteArrayOutputStream(), Charset.forName(cs));
+                fail("Unencodable raw text should fail in "+cs);
+            }
+            catch (CharacterCodingException cce) {
+                // ok
+            }
+        }
+    }
+
+    @Test public void testEstimatedSize()
+    {
+        TTagNode footer = n("div", a("id", "footer"), t("footer")).cache();
+        TTagNode root =
+            n("html",
+              n("body", a("class", "main"), a("hidden", null),
+                n("h1", t("Title"), t(-1234L), t(0)),
+                n("div"), n("a"), n("br"), n("p", n("span")),
+                footer));
+        int len = render(root).length();
+        assertEquals(len+len/16, root.estimateRenderedSize());
+        // Saved renderings are used as they are.
+        assertEquals(len+len/16, root.estimateRenderedSize());
+        len = render(root.select("h1")).length()+
+            render(root.select("br")).length();
+        assertEquals(len+len/16, new TList(root.select("h1"), root.select("br"))
+                     .estimateRenderedSize());
+        // Some escaped text still fits.
+        TTagNode escaped = n("p", t("A paragraph of ordinary text, which "+
+                                    "has the odd character to escape & so "+
+                                    "comes out a little longer."));
+        assertTrue(escaped.estimateRenderedSize() >= render(escaped).length());
+    }
+
+    @Test public void testRenderTargets()
+        throws IOException
+    {
+        StringBuilder text = new StringBuilder("a <b> & \u00e9 ");
+        // Long enough to cross internal buffers, with surrogate
+        // pairs at every offset.
+        for (int i=0; i<5000; i++) {
+            text.append((i%3 == 0)?"x\ud83d\ude00":"\u20ac");
+        }
+        TNode node = n("p", a("title", "\"\u00e9\""), t(text));
+        String html = render(node);
+
+        StringBuilder sb = new StringBuilder();
+        node.render(sb);
+        assertEquals(html, sb.toString());
+        StringWriter sw = new StringWriter();
+        node.render(sw);
+        assertEquals(html, sw.toString());
+
+        // UTF charsets get the characters themselves.
+        String raw = "<p title=\"&quot;\u00e9&quot;\">"+
+            text.toString().replace("&", "&amp;")
+            .replace("<", "&lt;").replace(">", "&gt;")+"</p>";
+        for (String cs: new String[] { "UTF-8", "UTF-16", "UTF-16LE" }) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            node.render(bout, Charset.forName(cs));
+            assertEquals(cs, raw, new String(bout.toByteArray(), cs));
+        }
+
+        // Others get entities, as before.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        node.render(bout, Charset.forName("ISO-8859-1"));
+        assertEquals(html, new String(bout.toByteArray(), "ISO-8859-1"));
+
+        // Unpaired surrogates stay as entities.
+        bout = new ByteArrayOutputStream();
+        n("p", t("\ud83dx")).render(bout, Charset.forName("UTF-8"));
+        assertEquals("<p>&#55357;x</p>", new String(bout.toByteArray(), "UTF-8"));
+
+        // Buffers are reused between renders, but not by a render
+        // inside another one.
+        final TNode inner = n("b", t(text));
+        Object value = new Object() {
+                public String toString()
+                {
+                    StringBuilder isb = new StringBuilder();
+                    try { inner.render(isb); }
+                    catch (IOException ioe) { throw new IllegalStateException(ioe); }
+                    return isb.toString();
+                }
+            };
+        String expected = "<i>"+render(inner).replace("&", "&amp;")
+            .replace("<", "&lt;").replace(">", "&gt;")+"</i>";
+        for (int i=0; i<2; i++) {
+            sb = new StringBuilder();
+            n("i", t(value)).render(sb);
+            assertEquals(expected, sb.toString());
+        }
+    }
+
+    @Test public void testParallelRendering()
+        throws IOException
+    {
+        TTagNode tbody = n("tbody");
+        for (int i=0; i<5000; i++) {
+            TTagNode tr = n("tr", a("class", "r"+(i%2)));
+            for (int j=0; j<5; j++) { tr.append(n("td", t(i*j))); }
+            tr.append(n("td", t("\u00e9 & "+i)));
+            tbody.append(tr);
+        }
+        TTagNode cached = n("ul");
+        for (int i=0; i<100; i++) { cached.append(n("li", t(i))); }
+        TTagNode page = n("html", n("body", n("table", tbody),
+                                    cached.cache(), t("end")));
+        String expected = render(page);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            StringBuilder sb = new StringBuilder();
+            page.render(sb, pool);
+            assertEquals(expected, sb.toString());
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            page.render(bout, Charset.forName("UTF-8"), pool);
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            page.render(plain, Charset.forName("UTF-8"));
+            assertArrayEquals(plain.toByteArray(), bout.toByteArray());
+
+            sb = new StringBuilder();
+            page.select("tr").render(sb, pool);
+            assertEquals(render(page.select("tr")), sb.toString());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test public void testParallelSelect()
+    {
+        TTagNode row = n("div", a("class", "row"),
+                         n("p", a("class", "x"), t("a")),
+                         n("p", n("span", a("class", "x"))));
+        row.freeze();
+        TTagNode body = n("body");
+        for (int i=0; i<3000; i++) {
+            // Some rows still share their children with the template.
+            body.append((i%3 == 0)?row.dup():n("div", a("class", "row"),
+                                                n("p", a("class", "x"))));
+        }
+        TTagNode page = n("html", n("head"), body, n("p", a("class", "x")));
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            for (String sel: new String[] {"p", ".x", "div p .x", "html p",
+                                           "div.row span", "head"}) {
+                List<TTagNode> parallel = page.select(sel, pool).getEntries();
+                List<TTagNode> serial = page.select(sel).getEntries();
+                assertEquals(sel, serial.size(), parallel.size());
+                for (int i=0; i<serial.size(); i++) {
+                    assertSame(sel, serial.get(i), parallel.get(i));
+                }
+            }
+            // Overlapping entries still give each node once.
+            TList both = new TList(page, body);
+            assertEquals(page.select("p").getEntries().size(),
+                         both.select("p", pool).getEntries().size());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test public void testDeepTrees()
+    {
+        // Built from the bottom up, so each step only touches the
+        // new parent.
+        TTagNode cur = n("b", a("id", "leaf"), t("x"));
+        for (int i=0; i<100000; i++) {
+            cur = n((i%2 == 0)?"div":"span", cur);
+        }
+        TTagNode root = n("body", cur);
+        assertEquals(1, root.select("div span b").getEntries().size());
+        assertEquals(50000, root.select("div").getEntries().size());
+
+        String html = render(root);
+        assertTrue(html.startsWith("<body><span><div><span>"));
+        assertTrue(html.endsWith("</span></div></span></body>"));
+        assertEquals(html, render(root.dup()));
+
+        root.freeze();
+        TTagNode copy = root.dup();
+        TList leaf = copy.select("#leaf");
+        assertEquals(1, leaf.getEntries().size());
+        leaf.append(a("class", "seen"));
+        assertEquals(html, render(root));
+        assertEquals(html.replace("id=\"leaf\"", "id=\"leaf\" class=\"seen\""),
+                     render(copy));
+
+        TTagNode indexed = n("html").index();
+        indexed.append(copy.dup());
+        assertEquals(1, indexed.select("#leaf").getEntries().size());
+        indexed.remove("body");
+        assertEquals(0, indexed.select("b").getEntries().size());
+
+        TWalker walker = new TWalker(copy);
+        int starts = 0;
+        int deepest = 0;
+        while (walker.next()) {
+            if (walker.event() == TWalker.START) { starts++; }
+            deepest = Math.max(deepest, walker.depth());
+        }
+        assertEquals(100002, starts);
+        assertEquals(100002, deepest);
+
+        // Built from the top down, each change only looks up the tree
+        // when something above it is cached; otherwise this would take
+        // minutes.
+        TTagNode top = n("body");
+        TTagNode bottom = top;
+        for (int i=0; i<100000; i++) {
+            TTagNode next = n("div");
+            bottom.append(next);
+            bottom = next;
+        }
+        bottom.append(a("id", "bottom"));
+        assertSame(bottom, top.select("#bottom").nth(0));
+
+        TTagNode saved = n("section").cache();
+        top.prepend(saved);
+        bottom = saved;
+        for (int i=0; i<100; i++) {
+            TTagNode next = n("div");
+            bottom.append(next);
+            bottom = next;
+        }
+        String before = render(saved);
+        bottom.append(t("x"));
+        assertEquals(before.replace("<div></div>", "<div>x</div>"),
+                     render(saved));
+    }
+
+    @Test public void testWalker()
+    {
+        TTagNode p = n("p", t("a"), n("br"), t("b"));
+        TTagNode root = n("div", p, n("span", t("c")));
+        StringBuilder sb = new StringBuilder();
+        TWalker walker = new TWalker(root);
+        while (walker.next()) {
+            TDom node = walker.node();
+            switch (walker.event()) {
+            case TWalker.START:
+                sb.append(walker.depth()+"<"+((TTagNode) node).getName());
+                if (node == p) { walker.skipChildren(); }
+                break;
+            case TWalker.TEXT:
+                sb.append(walker.depth()+((TText) node).getText());
+                break;
+            case TWalker.END:
+                sb.append(walker.depth()+"/"+((TTagNode) node).getName());
+                break;
+            }
+            sb.append(' ');
+        }
+        assertEquals("0<div 1<p 1/p 1<span 2c 1/span 0/div ", sb.toString());
+        assertFalse(walker.next());
+        assertNull(walker.node());
+
+        sb.setLength(0);
+        walker = new TWalker(new TList(p, root.select("span")));
+        while (walker.next()) { sb.append(walker.event()); }
+        assertEquals("121323123", sb.toString());
+    }
+
+    @Test public void testEvents()
+    {
+        TTagNode card = n("div", a("class", "vcard"), a("id", "bob"),
+                          n("span", a("class", "fn"), t("Bob")),
+                          n("img", a("src", "bob.jpg")),
+                          t(" & co"));
+        TTagNode root = n("body", card, n("p", t("after")));
+        StringBuilder sb = new StringBuilder();
+        TWalker events = root.events();
+        while (events.next()) {
+            TDom node = events.node();
+            sb.append(events.depth());
+            switch (events.event()) {
+            case TWalker.START:
+                sb.append("<"+((TTagNode) node).getName());
+                break;
+            case TWalker.ATTR:
+                TAttr attr = (TAttr) node;
+                sb.append("@"+attr.getName()+"="+attr.getValue());
+                // Skips the remaining attribute and the children.
+                if ("fn".equals(attr.getValue())) { events.skipChildren(); }
+                break;
+            case TWalker.TEXT:
+                sb.append(((TText) node).getText());
+                break;
+            case TWalker.END:
+                sb.append("/"+((TTagNode) node).getName());
+                break;
+            }
+            sb.append(' ');
+        }
+        assertEquals("0<body 1<div 2@class=vcard 2@id=bob 2<span 3@class=fn "+
+                     "2/span 2<img 3@src=bob.jpg 2/img 2 & co 1/div 1<p "+
+                     "2after 1/p 0/body ", sb.toString());
+
+        TWalker one = a("k", "v").events();
+        assertTrue(one.next());
+        assertEquals(TWalker.ATTR, one.event());
+        assertFalse(one.next());
+
+        TWalker text = t("x").events();
+        assertTrue(text.next());
+        assertEquals(TWalker.TEXT, text.event());
+        try {
+            text.skipChildren();
+            fail("skipped text");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        assertFalse(text.next());
+    }
+
     @Test public void testInserts()
     {
         TNode content =
@@ -86,6 +555,31 @@ public class BasicTest
               "</div>");
     }
 
+    @Test public void testBulkInserts()
+    {
+        TTagNode list = n("ul");
+        for (int i=0; i<10; i++) {
+            list.append(n("li", t(i)));
+        }
+        TTagNode badge = n("span", a("class", "badge"), n("b", t("new")));
+        list.select("li").append(badge).before(t("-")).after(n("br"));
+        StringBuilder expected = new StringBuilder("<ul>");
+        for (int i=0; i<10; i++) {
+            expected.append("-<li>"+i+"<span class=\"badge\"><b>new</b></span></li><br />");
+        }
+        check(list, expected.append("</ul>").toString());
+
+        // The copies may be changed independently.
+        TList badges = list.select("span.badge");
+        assertSame(badge, badges.nth(0));
+        assertFalse(badges.nth(1).isFrozen());
+        badges.nth(1).append(a("class", "old")).append("b", t("!"));
+        badge.append(a("id", "first"));
+        check(list.select("li").nth(2), "<li>2<span class=\"badge\"><b>new</b></span></li>");
+        check(list.select("li").nth(1), "<li>1<span class=\"old\"><b>new!</b></span></li>");
+        check(list.select("li").nth(0), "<li>0<span class=\"badge\" id=\"first\"><b>new</b></span></li>");
+    }
+
     @Test public void testSelection()
     {
         TNode content =
@@ -150,6 +644,622 @@ public class BasicTest
               "<span class=\"myspan otherspan\">some stuff</span>");
     }
 
+    @Test public void testCompiledSelectors()
+    {
+        TNode content =
+            n("div",
+              n("p", a("class", "first"), t("first paragraph")),
+              n("div", a("class", "inner"),
+                n("p", a("class", "second"), t("second paragraph"))));
+
+        TSelector sel = TSelector.compile("div p");
+        assertEquals("div p", sel.toString());
+        check(content.select(sel),
+              "<p class=\"first\">first paragraph</p>"+
+              "<p class=\"second\">second paragraph</p>");
+        // Reusing the compiled form gives the same results.
+        assertEquals(content.select("div p").getEntries(),
+                     content.select(sel).getEntries());
+        check(content.select(TSelector.compile(".inner p")),
+              "<p class=\"second\">second paragraph</p>");
+
+        // A node may match several steps by itself.
+        assertEquals(2, content.select("div div").getEntries().size());
+
+        // Selecting on a list merges results without duplicates.
+        check(content.select("div").select(TSelector.compile("p.second")),
+              "<p class=\"second\">second paragraph</p>");
+
+        try {
+            TSelector.compile("p[");
+            fail("Did not reject a bad selector");
+        }
+        catch (IllegalArgumentException iae) {
+            // ok
+        }
+    }
+
+    @Test public void testIndex()
+    {
+        TTagNode plain = n("body");
+        TTagNode indexed = n("body").index();
+        for (TTagNode root: new TTagNode[] { plain, indexed }) {
+            for (int i=0; i<50; i++) {
+                root.append
+                    (n("div", a("id", "d"+i), a("class", "box b"+(i%5)),
+                       n("p", a("class", "text"), t("para "+i)),
+                       n("span", t("span "+i))));
+            }
+            root.append("#d7", n("p", a("id", "slot")));
+            root.select("#d8").append(a("id", "renamed"));
+            root.remove("#d9");
+            root.select("#d10").remove(a("class", "x"));
+            root.select("span").nth(3).append(a("class", "text"));
+        }
+
+        String[] selectors = {
+            "#d3", "#slot", "#d8", "#renamed", "#d9", ".b2", "div.b2",
+            "p.text", ".text", "span", "div p", "#d7 p", "#d7 #slot",
+            "body .box p.text", "[id]", "#d10", ".box"
+        };
+        for (String sel: selectors) {
+            assertEquals(sel,
+                         render(plain.select(sel)),
+                         render(indexed.select(sel)));
+        }
+        assertEquals(1, indexed.select("#slot").getEntries().size());
+        assertEquals(0, indexed.select("#d9").getEntries().size());
+
+        // Selecting from inside the tree is limited to that subtree.
+        TTagNode d7 = indexed.select("#d7").nth(0);
+        assertEquals(1, d7.select("#slot").getEntries().size());
+        assertEquals(0, d7.select("#d3").getEntries().size());
+
+        // Removed nodes leave the index, and may be added again.
+        TTagNode slot = indexed.select("#slot").nth(0);
+        slot.remove();
+        assertNull(slot.up());
+        assertEquals(0, indexed.select("#slot").getEntries().size());
+        indexed.append("#d3", slot);
+        assertSame(slot, indexed.select("#slot").nth(0));
+        assertSame(d7.up(), indexed);
+
+        // Nodes added deep down join the index, and a root added to
+        // another node leaves its index behind.
+        TTagNode deep = indexed.select("#d3 #slot").nth(0);
+        for (int i=0; i<100; i++) {
+            TTagNode next = n("em");
+            deep.append(next);
+            deep = next;
+        }
+        deep.append(a("id", "deepest"));
+        assertSame(deep, indexed.select("#deepest").nth(0));
+        assertSame(deep, d7.up().select("em#deepest").nth(0));
+        TTagNode outer = n("html");
+        outer.append(indexed);
+        deep.append(n("i", a("class", "late")));
+        assertEquals(1, outer.select(".late").getEntries().size());
+        assertEquals(1, indexed.select("#deepest .late").getEntries().size());
+    }
+
+    private final static String render(TNode node)
+    {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        node.dump(pw);
+        pw.close();
+        return sw.toString();
+    }
+
+    @Test public void testTemplates()
+    {
+        TTagNode layout =
+            n("html",
+              n("head", n("title", t("Title"))),
+              n("body",
+                n("div", a("id", "nav"), n("a", a("href", "/"), t("home"))),
+                n("div", a("id", "slot")),
+                n("div", a("id", "footer"), t("footer"))));
+        String original = render(layout);
+        assertSame(layout, layout.freeze());
+        assertTrue(layout.isFrozen());
+        assertTrue(layout.select("a").nth(0).isFrozen());
+
+        TTagNode page1 = layout.dup();
+        TTagNode page2 = layout.dup();
+        assertFalse(page1.isFrozen());
+        assertEquals(original, render(page1));
+
+        page1.append("#slot", n("p", t("page one")));
+        page2.select("#nav a").nth(0).append(a("class", "current"));
+        page2.remove("#footer");
+
+        assertEquals(original, render(layout));
+        assertEquals(original.replace("<div id=\"slot\"></div>",
+                                      "<div id=\"slot\"><p>page one</p></div>"),
+                     render(page1));
+        assertEquals("<html><head><title>Title</title></head><body>"+
+                     "<div id=\"nav\"><a href=\"/\" class=\"current\">"+
+                     "home</a></div><div id=\"slot\"></div></body></html>",
+                     render(page2));
+
+        // Selected nodes belong to the instance, not the template.
+        TTagNode slot = page1.select("#slot").nth(0);
+        assertFalse(slot.isFrozen());
+        assertSame(page1, slot.up().up());
+        assertSame(page1.select("body").nth(0), slot.up());
+        assertSame(slot, page1.select("#slot").nth(0));
+
+        // Instances of instances, and freezing an instance.
+        TTagNode page3 = page1.dup();
+        assertEquals(render(page1), render(page3));
+        page1.freeze();
+        TTagNode page4 = page1.dup();
+        page4.remove("p");
+        assertEquals(original, render(page4));
+        assertEquals(1, page1.select("p").getEntries().size());
+
+        // Instances can be indexed.
+        TTagNode page5 = layout.dup().index();
+        page5.append("#slot", n("p", a("id", "five")));
+        assertEquals(1, page5.select("#five").getEntries().size());
+
+        try {
+            layout.append("#slot", n("p"));
+            fail("Changed a frozen node");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            layout.select("#slot").nth(0).append(a("class", "x"));
+            fail("Changed a frozen node");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            n("div").append(layout);
+            fail("Added a frozen node");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            layout.getChildren().clear();
+            fail("Changed a frozen node");
+        }
+        catch (UnsupportedOperationException uoe) {
+            // ok
+        }
+        assertEquals(original, render(layout));
+    }
+
+    @Test public void testFlat()
+        throws IOException
+    {
+        TTagNode row = n("li", a("class", "row"), n("a", a("href", "/"), t("x")));
+        row.freeze();
+        TTagNode root =
+            n("html",
+              n("head", n("script", raw("if (a < b) {}"))),
+              n("body", a("class", "main"), a("data-X", "1 & \"2\""),
+                a("hidden", null),
+                n("h1", t("T\u00e9st <1> & "), t(42)),
+                n("div"),
+                n("ul", row.dup(), row.dup(), n("li", a("class", "row x"))),
+                n("p", t("\ud83d\ude00 end"), n("br"))));
+        String html = render(root);
+        for (boolean direct: new boolean[] { false, true }) {
+            TFlat flat = new TFlat(root, direct);
+            StringBuilder sb = new StringBuilder();
+            flat.render(sb);
+            assertEquals(html, sb.toString());
+            for (String cs: new String[] { "UTF-8", "US-ASCII" }) {
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                root.render(expected, Charset.forName(cs));
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                flat.render(bytes, Charset.forName(cs));
+                assertEquals(expected.toString(cs), bytes.toString(cs));
+            }
+            assertEquals(html, render(flat.toTree()));
+
+            assertEquals("html", flat.getName(0));
+            assertEquals(-1, flat.up(0));
+            int body = flat.next(flat.first(0));
+            assertEquals("body", flat.getName(body));
+            assertEquals("1 & \"2\"", flat.getAttr(body, "data-x"));
+            assertNull(flat.getAttr(body, "hidden"));
+            assertNull(flat.getAttr(body, "missing"));
+            int script = flat.first(flat.first(0));
+            assertEquals(TFlat.RAW, flat.kind(flat.first(script)));
+            assertEquals("if (a < b) {}", flat.getText(flat.first(script)));
+
+            for (String sel: new String[] {"li", ".row", "ul .row a",
+                                           "li[class=~'x']", "body p br",
+                                           "html", "[hidden]", "span"}) {
+                List<TTagNode> nodes = root.select(sel).getEntries();
+                int[] found = flat.select(sel);
+                assertEquals(sel, nodes.size(), found.length);
+                for (int i=0; i<found.length; i++) {
+                    assertEquals(sel, render(nodes.get(i)),
+                                 render(flat.toTree(found[i])));
+                }
+            }
+        }
+    }
+
+    @Test public void testFlatBinary()
+        throws IOException
+    {
+        TTagNode body = n("body", a("class", "main"));
+        for (int i=0; i<100; i++) {
+            body.append(n("p", a("class", "para"), a("title", null),
+                          t("The same paragraph, over and over \u00e9"),
+                          n("span", t(i%3))));
+        }
+        TTagNode root = n("html", n("head", n("script", raw("a < b"))), body);
+        String html = render(root);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TFlat flat = new TFlat(root);
+        flat.write(bytes);
+        new TFlat(n("div", t("second"))).write(bytes);
+        // Repeated text and values are only saved once.
+        assertTrue(bytes.size() < html.length());
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        TFlat loaded = TFlat.read(buf);
+        StringBuilder sb = new StringBuilder();
+        loaded.render(sb);
+        assertEquals(html, sb.toString());
+        assertEquals(html, render(loaded.toTree()));
+        assertEquals(flat.size(), loaded.size());
+        assertEquals(100, loaded.select("p.para span").length);
+        assertEquals("<div>second</div>", render(TFlat.read(buf).toTree()));
+        assertFalse(buf.hasRemaining());
+
+        File file = File.createTempFile("tdom", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try { flat.write(out); }
+            finally { out.close(); }
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel ch = in.getChannel();
+                TFlat mapped = TFlat.read
+                    (ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+                sb.setLength(0);
+                mapped.render(sb);
+                assertEquals(html, sb.toString());
+                assertEquals("a < b", mapped.getText
+                             (mapped.select("script").length == 1?
+                              mapped.first(mapped.select("script")[0]):-1));
+            }
+            finally { in.close(); }
+        }
+        finally {
+            file.delete();
+        }
+
+        byte[] data = bytes.toByteArray();
+        try {
+            TFlat.read(ByteBuffer.wrap(data, 0, data.length/2));
+            fail("Read a truncated document");
+        }
+        catch (IllegalArgumentException iae) {
+            // ok
+        }
+        try {
+            TFlat.read(ByteBuffer.wrap("<html>".getBytes("UTF-8")));
+            fail("Read text as a document");
+        }
+        catch (IllegalArgumentException iae) {
+            // ok
+        }
+
+        // Damaged documents either fail in read(), or load into
+        // something that can be rendered and searched.
+        bytes.reset();
+        new TFlat(n("div", a("id", "x"),
+                    n("p", a("Class", "c"), a("hidden", null), t("one")),
+                    n("script", raw("a < b")), n("p", t(2)))).write(bytes);
+        data = bytes.toByteArray();
+        Random random = new Random(42);
+        int usable = 0;
+        for (int i=0; i<5000; i++) {
+            byte[] bad = data.clone();
+            for (int j=random.nextInt(3); j>=0; j--) {
+                bad[5+random.nextInt(bad.length-5)] ^= 1 << random.nextInt(8);
+            }
+            int len = (i%10 == 0)?random.nextInt(bad.length):bad.length;
+            TFlat damaged;
+            try {
+                damaged = TFlat.read(ByteBuffer.wrap(bad, 0, len));
+            }
+            catch (IllegalArgumentException iae) {
+                continue;
+            }
+            sb.setLength(0);
+            damaged.render(sb);
+            damaged.select("p.c");
+            render(damaged.toTree());
+            usable++;
+        }
+        assertTrue(usable > 0);
+    }
+
+    @Test public void testArena()
+    {
+        Arena arena = new Arena();
+        TTagNode shared = n("p", t("kept"));
+        TTagNode page = arena.n("html",
+                                arena.n("body", a("class", "x"),
+                                        arena.n("div", t("one")), shared));
+        TTagNode body = page.select("body").nth(0);
+        String html = render(page);
+        assertEquals("<html><body class=\"x\"><div>one</div>"+
+                     "<p>kept</p></body></html>", html);
+
+        TTagNode frozen = arena.n("div", t("template")).freeze();
+        arena.reset();
+        try {
+            render(page);
+            fail("Used a node after reset");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            body.append(t("x"));
+            fail("Used a node after reset");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            n("div").append(body);
+            fail("Used a node after reset");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        // Reading one fails too.
+        for (int i=0; i<4; i++) {
+            try {
+                switch (i) {
+                case 0: body.getName(); break;
+                case 1: body.getAttrs(); break;
+                case 2: body.getChildren(); break;
+                default: body.up(); break;
+                }
+                fail("Read a node after reset");
+            }
+            catch (IllegalStateException ise) {
+                // ok
+            }
+        }
+        // Nodes from outside the arena are let go, and frozen nodes
+        // are not recycled.
+        assertNull(shared.up());
+        n("div").append(shared);
+        assertEquals("<div>template</div>", render(frozen.dup()));
+
+        // Nodes built on recycled storage come back clean.
+        List<TTagNode> built = new ArrayList<TTagNode>();
+        for (int i=0; i<3; i++) {
+            built.add(arena.n("span"));
+        }
+        for (TTagNode n: built) {
+            assertTrue(n.getChildren().isEmpty());
+            assertTrue(n.getAttrs().isEmpty());
+            assertNull(n.up());
+            assertEquals("span", n.getName());
+        }
+        // Stale references never reach a node from a later build.
+        assertFalse(built.contains(page) || built.contains(body));
+        try {
+            body.append(t("x"));
+            fail("Used a node after reset");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        TTagNode again = arena.n("ul", built.get(0).append(t("a")),
+                                 built.get(1), built.get(2));
+        assertEquals("<ul><span>a</span><span /><span /></ul>",
+                     render(again));
+        assertEquals(1, again.select("span").nth(0).getChildren().size());
+    }
+
+    @Test public void testSharedFrozenTree()
+        throws Exception
+    {
+        TTagNode body = n("body");
+        final TTagNode page = n("html", n("head").cache(), body).index();
+        for (int i=0; i<500; i++) {
+            body.append(n("div", a("class", "row r"+(i%7)),
+                          n("p", a("id", "p"+i), t("row "+i)),
+                          n("span", a("class", "r"+(i%7)))));
+        }
+        page.freeze();
+        final String html = render(page);
+        final int matches = page.select(".r3").getEntries().size();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t=0; t<8; t++) {
+                results.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call()
+                    {
+                        for (int i=0; i<20; i++) {
+                            // Indexed selects sort hits by position.
+                            if (page.select(".r3").getEntries().size() !=
+                                matches) {
+                                return false;
+                            }
+                            if (page.select("#p"+(i*7)).getEntries().size()
+                                != 1) {
+                                return false;
+                            }
+                            if (!html.equals(render(page))) { return false; }
+                            if (!html.equals(render(page.dup()))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result: results) {
+                assertTrue(result.get());
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        TTagNode row = page.select("div").nth(3);
+        try {
+            row.before(n("p"));
+            fail("Changed a frozen node");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            row.after(t("x"));
+            fail("Changed a frozen node");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            page.remove(".r3");
+            fail("Changed a frozen node");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        assertEquals(html, render(page));
+    }
+
+    @Test public void testCachedRendering()
+        throws IOException
+    {
+        TTagNode header = n("div", a("id", "header"),
+                            n("h1", t("Caf\u00e9")),
+                            n("ul", n("li", t("one"))));
+        TTagNode page = n("body", header.cache(), n("p", t("body")));
+        String first = render(page);
+        assertEquals("<body><div id=\"header\"><h1>Caf&#233;</h1>"+
+                     "<ul><li>one</li></ul></div><p>body</p></body>", first);
+        assertEquals(first, render(page));
+
+        // Changes anywhere below the cached node show up.
+        page.append("ul", n("li", t("two")));
+        assertEquals(first.replace("</li></ul>", "</li><li>two</li></ul>"),
+                     render(page));
+        page.select("h1").nth(0).append(a("class", "big"));
+        page.remove("li");
+        assertEquals("<body><div id=\"header\"><h1 class=\"big\">Caf&#233;"+
+                     "</h1><ul /></div><p>body</p></body>", render(page));
+
+        // Output with raw characters is cached separately.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        page.render(bout, Charset.forName("UTF-8"));
+        assertTrue(new String(bout.toByteArray(), "UTF-8").contains("Caf\u00e9"));
+        assertTrue(render(page).contains("Caf&#233;"));
+
+        // Cached parts of a template, and of copies made from it.
+        TTagNode layout = n("html", n("body", header.remove().dup(),
+                                      n("div", a("id", "slot"))));
+        layout.select("#header").nth(0).cache();
+        String original = render(layout.freeze());
+        TTagNode copy = layout.dup();
+        copy.append("#slot", t("x"));
+        assertEquals(original.replace("slot\"></div>", "slot\">x</div>"),
+                     render(copy));
+        copy.select("#header h1").nth(0).remove();
+        assertEquals(original, render(layout));
+        assertFalse(render(copy).contains("h1"));
+    }
+
+    @Test public void testStreaming()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        TTagNode head = n("head", n("title", t("T")));
+        TTagNode body = n("body", a("class", "c"));
+        TTagNode page = n("html", head, body);
+        TStream stream = new TStream(page, sb);
+
+        // Nothing is ready until the first child is finished.
+        stream.flush();
+        assertEquals("", sb.toString());
+        stream.finish(head);
+        assertEquals("<html><head><title>T</title></head>", sb.toString());
+        assertEquals(1, page.getChildren().size());
+
+        TTagNode top = n("div", t("top"));
+        TTagNode rest = n("div");
+        body.append(top).append(rest);
+        stream.finish(top);
+        assertEquals("<html><head><title>T</title></head>"+
+                     "<body class=\"c\"><div>top</div>", sb.toString());
+        assertEquals(1, body.getChildren().size());
+        try {
+            body.append(a("id", "late"));
+            fail("Changed a streamed start tag");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        // Nothing can go in front of children already written.
+        try {
+            body.prepend(n("nav"));
+            fail("Added before streamed children");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        try {
+            rest.before(t("late"));
+            fail("Added before streamed children");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+
+        // Unfinished nodes are opened once a child node is finished.
+        rest.append(t("a & b"));
+        stream.flush();
+        assertTrue(sb.toString().endsWith("<div>top</div>"));
+        TTagNode p = n("p");
+        rest.append(p);
+        stream.finish(p);
+        assertTrue(sb.toString().endsWith("<div>a &amp; b<p />"));
+        try {
+            rest.addAt(0, t("late"));
+            fail("Added before streamed text");
+        }
+        catch (IllegalStateException ise) {
+            // ok
+        }
+        rest.append(t("end"));
+        stream.close();
+        assertTrue(sb.toString().endsWith("<p />end</div></body></html>"));
+        assertEquals(0, page.getChildren().size());
+
+        // A finished tree streams all at once.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        TTagNode whole = n("ul", n("li", t("\u00e9")), n("li"));
+        String expected = render(whole);
+        new TStream(whole, bout, Charset.forName("UTF-8")).close();
+        assertEquals(expected.replace("&#233;", "\u00e9"),
+                     new String(bout.toByteArray(), "UTF-8"));
+    }
+
     @Test public void testDeletes()
     {
         TNode content =
@@ -190,6 +1300,96 @@ public class BasicTest
 
         // Check that we avoid dups in selectors.
         assertEquals(1, root.select("p").up().getEntries().size());
+
+        // The root has no parent.
+        assertEquals(0, root.select("div").up().getEntries().size());
+    }
+
+    @Test public void testLargeMerges()
+    {
+        TTagNode root = n("ul");
+        for (int i=0; i<100; i++) {
+            root.append(n("li", a("id", "i"+i)));
+        }
+        TList all = root.select("li");
+        TList merged = new TList(all.nth(50), all, all.nth(99));
+        assertEquals(100, merged.getEntries().size());
+        assertSame(all.nth(50), merged.nth(0));
+        assertSame(all.nth(0), merged.nth(1));
+        assertSame(all.nth(99), merged.last());
+
+        assertEquals(100, all.concat(all, root.select("li")).getEntries().size());
+        assertEquals(1, all.up().getEntries().size());
+
+        try {
+            all.getEntries().clear();
+            fail("Entries should be read-only");
+        }
+        catch (UnsupportedOperationException uoe) {
+            // ok
+        }
+    }
+
+    @Test public void testAttributeOrder()
+    {
+        TNode input =
+            n("input", a("type", "text"), a("name", "q"),
+              a("value", "x"), a("class", "wide"), a("id", "search"));
+        String expected =
+            "<input type=\"text\" name=\"q\" value=\"x\" class=\"wide\""+
+            " id=\"search\" />";
+        check(input, expected);
+        check((TNode) input.dup(), expected);
+
+        // Replacing an attribute keeps its place.
+        input.append(a("value", "y"));
+        check(input,
+              "<input type=\"text\" name=\"q\" value=\"y\" class=\"wide\""+
+              " id=\"search\" />");
+    }
+
+    @Test public void testWideSiblings()
+    {
+        // Random edits among many siblings, checked against a plain
+        // list of the expected ids.
+        TTagNode root = n("ul", t("start"));
+        List<String> ids = new ArrayList<String>();
+        List<TTagNode> nodes = new ArrayList<TTagNode>();
+        Random random = new Random(42);
+        for (int i=0; i<3000; i++) {
+            String id = "i"+i;
+            TTagNode li = n("li", a("id", id));
+            int op = random.nextInt(4);
+            int at = nodes.isEmpty()?-1:random.nextInt(nodes.size());
+            if ((op == 0) || (at < 0)) {
+                root.append(li);
+                ids.add(id);
+                nodes.add(li);
+            }
+            else if (op == 1) {
+                nodes.get(at).before(li);
+                ids.add(at, id);
+                nodes.add(at, li);
+            }
+            else if (op == 2) {
+                nodes.get(at).after(li);
+                ids.add(at+1, id);
+                nodes.add(at+1, li);
+            }
+            else {
+                nodes.remove(at).remove();
+                ids.remove(at);
+            }
+        }
+        List<TDom> children = root.getChildren();
+        assertEquals(ids.size()+1, children.size());
+        for (int i=0; i<ids.size(); i++) {
+            assertSame(nodes.get(i), children.get(i+1));
+            assertEquals(ids.get(i), nodes.get(i).getAttrs().get("id").getValue());
+        }
+        TList all = root.select("li");
+        all.remove();
+        check(root, "<ul>start</ul>");
     }
 
     @Test public void adHocTests()
@@ -0,0 +1,143 @@
+package org.tdom;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static org.tdom.TDom.*;
+
+public class ParserTest
+{
+    private final static String render(TNode node)
+    {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        node.dump(pw);
+        pw.close();
+        return sw.toString();
+    }
+
+    private final void check(String in, String expected)
+        throws IOException
+    {
+        assertEquals(expected, render(parse(in)));
+        // The same, but fed through a reader a few chars at a time.
+        assertEquals(expected, render(parse(new Trickle(in))));
+    }
+
+    @Test public void testRoundTrip()
+        throws IOException
+    {
+        TNode html =
+            n("html",
+              n("head",
+                n("link",
+                  a("type", "stylesheet"),
+                  a("href", "http://example.com/a.css?a=1&b=2"))),
+              n("body",
+                n("div", a("class", "content"), a("id", "main"),
+                  n("p", t("first <paragraph> & \"more\"")),
+                  n("p", t("caf\u00e9 \ud83d\ude00")),
+                  n("a", a("href", "/x")))));
+        String text = render(html);
+        check(text, text);
+        assertEquals(2, parse(text).select("p").getEntries().size());
+        assertEquals("main", parse(text).select(".content").nth(0)
+                     .getAttrs().get("id").getValue());
+    }
+
+    @Test public void testForgiving()
+        throws IOException
+    {
+        check("<!DOCTYPE html><!-- a comment --><html><body>"+
+              "<P CLASS=x>one<p>two</P><br><img src=a.png alt='a \"b\"'>"+
+              "<ul><li>a<li>b</ul><input disabled></body></html>",
+              "<html><body>"+
+              "<P CLASS=\"x\">one</P><p>two</p><br /><img src=\"a.png\" "+
+              "alt=\"a &quot;b&quot;\" /><ul><li>a</li><li>b</li></ul>"+
+              "<input disabled /></body></html>");
+
+        // Stray and missing end tags, and a literal '<'.
+        check("<div><span>a < b</em></div> trailing",
+              "<div><span>a &lt; b</span></div>");
+
+        // Entities, known and unknown.
+        check("<p>&lt;&amp;&#233;&#x1F600;&nbsp;&bogus; &amp</p>",
+              "<p>&lt;&amp;&#233;&#128512;&#160;&amp;bogus; &amp;amp</p>");
+
+        // Script bodies are not parsed.
+        TList script = parse("<script>if (a < b && c) { x(\"</p>\"); }"+
+                             "</script>");
+        assertEquals("if (a < b && c) { x(\"</p>\"); }",
+                     ((TText) script.nth(0).getChildren().get(0)).getText());
+        // and are written back as they were read.
+        String raw =
+            "<script>if (a < b && c) { x(\"</p>\"); }</script>"+
+            "<style>p > a:after { content: \"&\"; }</style>";
+        check(raw, raw);
+        raw = "<script>var s=\"caf\u00e9 \ud83d\ude00\";</script>";
+        check(raw, raw);
+        // Only the element's own end tag ends it.
+        check("<script>a</scripts>b</script>", "<script>a</scripts>b</script>");
+        check("<style>a</style >", "<style>a</style>");
+        check("<script>a</script", "<script>a</script>");
+
+        // First of two attributes wins.
+        check("<a href=1 href=2>x</a>", "<a href=\"1\">x</a>");
+        check("", "");
+    }
+
+    @Test public void testXml()
+        throws IOException
+    {
+        check("<?xml version=\"1.0\"?><rss><channel><link>http://x</link>"+
+              "<item><title><![CDATA[a <b>]]></title><p>x<p>y</p></p>"+
+              "<empty/></item></channel></rss>",
+              "<rss><channel><link>http://x</link>"+
+              "<item><title>a &lt;b&gt;</title><p>x<p>y</p></p>"+
+              "<empty /></item></channel></rss>");
+    }
+
+    @Test public void testSharedNames()
+    {
+        TList list = parse("<div><p>a</p><p>b</p></div><DIV></DIV>");
+        assertSame(list.select("p").nth(0).getName(),
+                   list.select("p").nth(1).getName());
+        assertEquals(2, list.getEntries().size());
+
+        // Names are shared across documents, and with built nodes.
+        TList other = parse("<p CLASS=x>c</p>");
+        TTagNode built = n(new String("p"), a(new String("class"), "y"));
+        assertSame(list.select("p").nth(0).getName(), other.nth(0).getName());
+        assertSame(other.nth(0).getName(), built.getName());
+        assertSame(other.nth(0).getAttrs().keySet().iterator().next(),
+                   built.getAttrs().keySet().iterator().next());
+        assertEquals(1, new TList(built, other).select("p.y").getEntries().size());
+    }
+
+    // Hands out a few chars at a time, to exercise buffer refills.
+    private final static class Trickle extends Reader
+    {
+        private Trickle(String s)
+        { m_s = s; }
+
+        public int read(char[] buf, int off, int len)
+        {
+            if (m_pos == m_s.length()) { return -1; }
+            int n = Math.min(Math.min(len, 3), m_s.length()-m_pos);
+            m_s.getChars(m_pos, m_pos+n, buf, off);
+            m_pos += n;
+            return n;
+        }
+
+        public void close() {}
+
+        private final String m_s;
+        private int m_pos = 0;
+    }
+}